@@ -73,6 +73,21 @@ public abstract class BaseExample
     return dicStore;
   }
   
+  /**
+   * Returns the ExContextFactory backing getContext(). If the call to
+   * getContext() has not been made yet, this call is made to ensure that the
+   * Context pool exists.
+   *
+   * @return ExContextFactory
+   * @throws Exception if there was a problem with Context or DicStore creation.
+   */
+  protected static ExContextFactory getContextFactory() throws Exception
+  {
+    if(ecf == null)
+      getContext();
+    return ecf;
+  }
+
   /**
    * Returns a UsrHead object with the user and password set. If the Context has
    * not yet been created, it is created and then UsrHead is returned.
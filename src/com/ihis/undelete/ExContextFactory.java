@@ -2,12 +2,16 @@ package com.ihis.undelete;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
 
 import madison.mpi.MpiNetConstants;
 import madison.mpi.MpiNetSecure;
@@ -17,23 +21,43 @@ import madison.mpi.UsrHead;
  * This class implements a simple Context Factory that helps in management of
  * Context Pools.<BR>
  * Context Pools are created based on property files.<BR>
+ * The pool can be partitioned into named lanes (for example interactive and
+ * bulk) with the lanes, lane.&lt;name&gt;.reserved, lane.&lt;name&gt;.max and
+ * lane.&lt;name&gt;.timeout properties. Each lane has its own FIFO wait queue
+ * and wait timeout. A lane may use idle contexts up to its max, including
+ * contexts reserved by other lanes. A context that is in use is never taken
+ * back, so a reservation only gives priority: while a lane is waiting below
+ * its reservation no other lane may borrow, and the next context freed goes
+ * to it. A lane whose reservation is lent out therefore waits until the
+ * borrower frees a context, i.e. up to the duration of one unit of the
+ * borrower's work (one pre-flight batch, one undelete), and its timeout must
+ * be longer than that. Keeping the max of the other lanes at or below maxCtx
+ * minus the reservation removes that wait at the cost of disabling
+ * borrowing. When lanes is set, defaultLane must name the lane used by
+ * getWrappedContext(). Without the lanes property the pool is a single lane
+ * named "default".<BR>
  * See the main method in this class for usage illustrations.
  */
 public class ExContextFactory
 {
   private static final String PROP_FILE_DEFAULT_PREFIX = "examples";
+  private static final String DEFAULT_LANE = "default";
   private static Map<String, ExContextFactory> factories_ = new Hashtable<String, ExContextFactory>();
   private UsrHead usrHead = null;
   private ResourceBundle rb = null;
   private List<ExContextWrapper> activeContexts = new ArrayList<ExContextWrapper>();
   private String propFilePassed = "";
+  private Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+  private String defaultLane = DEFAULT_LANE;
   
   /**
    * Command-line entry into the class. This method is used for command-line
    * testing.
    * 
    * @param args
-   *          no command line arguments are excepted.
+   *          optionally the name of a lane with a reservation and the name of
+   *          a lane that borrows from it, e.g. interactive bulk, to check the
+   *          lane allocation against the configured pool.
    * @throws Exception
    */
   public static void main(String[] args)
@@ -47,6 +71,8 @@ public class ExContextFactory
       ExContextFactory ecf = ExContextFactory.getInstance(null);
       // Now that we have an instance of the factory we can get a single 
       // context out of the available pool
+      // getWrappedContext() takes the context from the default lane; with
+      // lanes configured a lane can be named, e.g. getWrappedContext("interactive").
       ExContextWrapper ecw = ecf.getWrappedContext();
       // Notice that we are getting back an instance of ExContextWrapper.
       // We created this wrapper to allow the ExContextFactory to keep
@@ -62,12 +88,122 @@ public class ExContextFactory
       ecf.freeContext(ecw);
       // The call above returned our ExContextWrapper back to the pool.
       // We must not try to use this instance again.
+      if(args.length == 2)
+        checkLanes(ecf, args[0], args[1]);
     } catch (Exception e)
     {
       System.err.println("Execution of the class ContextFactory haulted due to Exception: \n" + e.toString());
     }
   }
   
+  /**
+   * Command-line check of the lane allocation. The borrowing lane fills the
+   * pool up to its max; then a borrower and, after it, a reserved-lane waiter
+   * queue up, and the next freed Context must go to the reserved lane. A
+   * further reserved-lane request must time out after the lane's timeout.
+   * 
+   * @param ecf
+   *          the factory to check; none of its Contexts may be in use.
+   * @param reservedName
+   *          a lane with lane.&lt;name&gt;.reserved of at least 1.
+   * @param borrowerName
+   *          a lane whose max covers the whole pool.
+   * @throws Exception
+   *           if the allocation does not behave as described.
+   */
+  private static void checkLanes(final ExContextFactory ecf, String reservedName, String borrowerName) throws Exception
+  {
+    Lane reservedLane = ecf.getLane(reservedName);
+    Lane borrowerLane = ecf.getLane(borrowerName);
+    if(reservedLane.reserved < 1 || reservedLane.timeout < 2000 || borrowerLane.timeout < 2000)
+      err("The lane check needs a reservation on " + reservedName + " and a timeout of at least 2000 ms on both lanes.");
+    List<ExContextWrapper> held = new ArrayList<ExContextWrapper>();
+    List<String> acquired = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = new CountDownLatch(1);
+    List<Thread> waiters = new ArrayList<Thread>();
+    try
+    {
+      // A lane is capped at its max.
+      while(ecf.getFreeContextCount(borrowerName) > 0)
+        held.add(ecf.getWrappedContext(borrowerName));
+      info("Lane " + borrowerName + " holds " + held.size() + " Contexts, its max is " + borrowerLane.max + ".");
+      if(held.size() > borrowerLane.max)
+        err("Lane " + borrowerName + " exceeded its max.");
+      if(ecf.getFreeContextCount() > 0)
+      {
+        info("Lane " + borrowerName + " can not fill the pool; the priority and timeout checks are skipped.");
+        return;
+      }
+      
+      // A reserved lane gets the next freed Context ahead of an earlier borrower.
+      waiters.add(startWaiter(ecf, borrowerName, acquired, release));
+      Thread.sleep(500);
+      waiters.add(startWaiter(ecf, reservedName, acquired, release));
+      Thread.sleep(500);
+      ecf.freeContext(held.remove(0));
+      for(int i = 0; i < 20 && acquired.isEmpty(); i++)
+        Thread.sleep(100);
+      info("The freed Context went to: " + acquired);
+      if(acquired.size() != 1 || !reservedName.equals(acquired.get(0)))
+        err("The freed Context did not go to lane " + reservedName + " first.");
+      
+      // A lane waiter times out.
+      long start = System.currentTimeMillis();
+      ExContextWrapper ecw = null;
+      try
+      {
+        ecw = ecf.getWrappedContext(reservedName);
+      } catch (Exception e)
+      {
+        info("Lane " + reservedName + " timed out after " + (System.currentTimeMillis() - start) + " ms.");
+      }
+      if(ecw != null)
+      {
+        ecf.freeContext(ecw);
+        err("Lane " + reservedName + " got a Context from a full pool.");
+      }
+      info("Lane check passed.");
+    } finally
+    {
+      release.countDown();
+      for(ExContextWrapper ewc : held)
+        ecf.freeContext(ewc);
+      for(Thread waiter : waiters)
+        waiter.join();
+    }
+  }
+  
+  /**
+   * Starts a thread that takes a Context for the lane, records the lane name
+   * in acquired and holds the Context until release is counted down.
+   */
+  private static Thread startWaiter(final ExContextFactory ecf, final String laneName, final List<String> acquired,
+      final CountDownLatch release)
+  {
+    Thread waiter = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        ExContextWrapper ecw = null;
+        try
+        {
+          ecw = ecf.getWrappedContext(laneName);
+          acquired.add(laneName);
+          release.await();
+        } catch (Exception e)
+        {
+          System.err.println("Lane " + laneName + " waiter failed: " + e.toString());
+        } finally
+        {
+          if(ecw != null)
+            ecf.freeContext(ecw);
+        }
+      }
+    });
+    waiter.start();
+    return waiter;
+  }
+  
   /**
    * This class is protected from instantiation. Use
    * ContextFactory.getInstance().
@@ -104,7 +240,7 @@ public class ExContextFactory
   }
   
   /**
-   * Gets an ExContextWrapper out of the available pool.
+   * Gets an ExContextWrapper out of the available pool for the default lane.
    * freeContext(ExContextWrapper) must be executed in order for this
    * ExContextWrapper to be returned to the pool.
    * 
@@ -113,28 +249,70 @@ public class ExContextFactory
    *           if context pool could not be created or there are no
    *           ExContextWrapper object left unused in the pool.
    */
-  protected synchronized ExContextWrapper getWrappedContext() throws Exception
+  protected ExContextWrapper getWrappedContext() throws Exception
+  {
+    return getWrappedContext(null);
+  }
+  
+  /**
+   * Gets an ExContextWrapper out of the available pool for the named lane. If
+   * the lane can not take a context right away the call waits in the lane's
+   * queue for up to the lane's timeout.
+   * freeContext(ExContextWrapper) must be executed in order for this
+   * ExContextWrapper to be returned to the pool.
+   * 
+   * @param laneName
+   *          the lane to charge the context to, null for the default lane.
+   * @return ExContextWrapper
+   * @throws Exception
+   *           if context pool could not be created, the lane does not exist
+   *           or no ExContextWrapper became available within the lane's
+   *           timeout.
+   */
+  protected synchronized ExContextWrapper getWrappedContext(String laneName) throws Exception
   {
-    ExContextWrapper ewcReturn = null;
     if (activeContexts.size() < 1)
       refreshContexts();
-    for(ExContextWrapper ewc : activeContexts)
+    Lane lane = getLane(laneName);
+    Thread current = Thread.currentThread();
+    lane.waiters.addLast(current);
+    try
     {
-      if(!ewc.isCheckedOut())
+      long deadline = System.currentTimeMillis() + lane.timeout;
+      while (lane.waiters.getFirst() != current || availableTo(lane) < 1)
       {
-        ewc.checkOut();
-        ewcReturn = ewc;
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          // A bottle neck here is probably indicative of a low ctxMax or
+          // lane.<name>.reserved setting in the .properties file.
+          if (lane.timeout == 0)
+            err("All of the available Context objects in the pool based on the " + propFilePassed
+                + ".properties are being used, and the context pool has been exhausted.");
+          err("All of the Context objects in the pool based on the " + propFilePassed
+              + ".properties available to the lane " + lane.name + " are being used, and no Context was freed within "
+              + lane.timeout + " ms.");
+        }
+        wait(remaining);
       }
-    }
-    if(ewcReturn == null)
+      for (ExContextWrapper ewc : activeContexts)
+      {
+        if (!ewc.isCheckedOut())
+        {
+          ewc.checkOut(lane.name);
+          lane.inUse++;
+          return ewc;
+        }
+      }
+      // availableTo() counted a free context, so this is not expected.
+      err("The context pool based on the " + propFilePassed + ".properties has been exhausted.");
+      return null;
+    } finally
     {
-      // A wait() call could be implemented here to wait for an ExContextWrapper
-      // to be freed in the pool, but a bottle neck here is probably indicative
-      // of a low ctxMax setting in the .properties file.
-      err("All of the available Context objects in the pool based on the " + propFilePassed
-          + ".properties are being used, and the context pool has been exhausted.");
+      lane.waiters.remove(current);
+      // The head of this lane's queue may have changed.
+      notifyAll();
     }
-    return ewcReturn;
   }
   
   /**
@@ -149,14 +327,89 @@ public class ExContextFactory
   {
     for (ExContextWrapper ewc : activeContexts)
     {
-      if (ewc.equals(exContextWrapper))
+      if (ewc.equals(exContextWrapper) && ewc.isCheckedOut())
       {
+        Lane lane = lanes.get(ewc.getLane());
+        if (lane != null && lane.inUse > 0)
+          lane.inUse--;
         ewc.checkIn();
         info("Context # " + ewc.getMnemonic() + " has been returned to the pool.");
       }
     }
+    notifyAll();
   }
   
+  /**
+   * Returns the number of ExContextWrapper objects in the pool that are not
+   * checked-out at the moment of the call.
+   *
+   * @return the number of free ExContextWrapper objects.
+   */
+  protected synchronized int getFreeContextCount()
+  {
+    int free = 0;
+    for (ExContextWrapper ewc : activeContexts)
+    {
+      if (!ewc.isCheckedOut())
+        free++;
+    }
+    return free;
+  }
+  
+  /**
+   * Returns the number of ExContextWrapper objects the named lane could take
+   * at the moment of the call without waiting.
+   * 
+   * @param laneName
+   *          the lane name, null for the default lane.
+   * @return the number of ExContextWrapper objects available to the lane.
+   * @throws Exception
+   *           if the lane does not exist.
+   */
+  protected synchronized int getFreeContextCount(String laneName) throws Exception
+  {
+    return availableTo(getLane(laneName));
+  }
+  
+  /**
+   * Returns the lane with the given name.
+   * 
+   * @param laneName
+   *          the lane name, null for the default lane.
+   * @throws Exception
+   *           if the lane is not configured.
+   */
+  private Lane getLane(String laneName) throws Exception
+  {
+    if (laneName == null || laneName.trim().equals(""))
+      laneName = defaultLane;
+    Lane lane = lanes.get(laneName.trim());
+    if (lane == null)
+      err("The lane " + laneName + " is not configured in the " + propFilePassed + ".properties file.");
+    return lane;
+  }
+  
+  /**
+   * Counts the free contexts the lane may take now. Up to its reservation a
+   * lane competes only for free contexts; above it, the lane must also leave
+   * enough free contexts for the other lanes that are waiting below their
+   * reservation, and stay within its max.
+   */
+  private int availableTo(Lane lane)
+  {
+    int free = getFreeContextCount();
+    if (lane.inUse < lane.reserved)
+      return free;
+    int owed = 0;
+    for (Lane other : lanes.values())
+    {
+      if (other != lane && other.inUse < other.reserved)
+        owed += Math.min(other.reserved - other.inUse, other.waiters.size());
+    }
+    int available = Math.min(free - owed, lane.max - lane.inUse);
+    return (available < 0) ? 0 : available;
+  }
+
   /**
    * This method re-reads the .properties file and re-establishes all of the
    * ExContextWrapper in the pool.
@@ -217,6 +470,9 @@ public class ExContextFactory
         info("MpiNet over HTTP is not used.");
       }
       
+      // Validate the lanes before any Context is connected.
+      refreshLanes(maxCtx);
+      
       for(int mnemonic = 1; mnemonic <= maxCtx; mnemonic ++)
       {
         // Create a UsrHead object
@@ -237,8 +493,73 @@ public class ExContextFactory
       err("The " + propFilePassed + ".properties file must contain the following properties: host, port, userId, password, and maxCtx, timeout, and useSSL.");
     } catch(NumberFormatException nfe)
     {
-      err("The " + propFilePassed + ".properties file must contain a number as a value assigned to port, timeout, and maxCtx.");
+      err("The " + propFilePassed + ".properties file must contain a number as a value assigned to port, timeout, maxCtx, " +
+          "and the lane.<name>.reserved, lane.<name>.max and lane.<name>.timeout properties.");
+    }
+  }
+  
+  /**
+   * Reads the lane configuration from the .properties file. Without the lanes
+   * property a single lane owns the whole pool and fails right away when the
+   * pool is exhausted. Lanes that already exist keep their Lane instance, so
+   * threads waiting in getWrappedContext() stay in the same queue.
+   * 
+   * @param maxCtx
+   *          the size of the pool.
+   * @throws Exception
+   *           if the reservations add up to more than the pool size, the
+   *           defaultLane is not a lane, or a lane with waiting threads was
+   *           removed from the .properties file.
+   */
+  private void refreshLanes(int maxCtx) throws Exception
+  {
+    Map<String, Lane> newLanes = new LinkedHashMap<String, Lane>();
+    String laneNames = (rb.containsKey("lanes")) ? rb.getString("lanes") : DEFAULT_LANE;
+    int reservedTotal = 0;
+    for (String laneName : laneNames.split(","))
+    {
+      laneName = laneName.trim();
+      if (laneName.equals(""))
+        continue;
+      String prefix = "lane." + laneName + ".";
+      int reserved = Integer.parseInt((rb.containsKey(prefix + "reserved")) ? rb.getString(prefix + "reserved") : "0");
+      int max = Integer.parseInt((rb.containsKey(prefix + "max")) ? rb.getString(prefix + "max") : String.valueOf(maxCtx));
+      int timeout = Integer.parseInt((rb.containsKey(prefix + "timeout")) ? rb.getString(prefix + "timeout") : "0");
+      reserved = (reserved < 0) ? 0 : reserved;
+      // A lane can always use at least its reservation.
+      max = (max < reserved) ? reserved : max;
+      timeout = (timeout < 0) ? 0 : timeout;
+      reservedTotal += reserved;
+      Lane lane = lanes.get(laneName);
+      if (lane == null)
+        lane = new Lane(laneName);
+      lane.configure(reserved, max, timeout);
+      newLanes.put(laneName, lane);
+    }
+    if (newLanes.isEmpty())
+    {
+      Lane lane = (lanes.containsKey(DEFAULT_LANE)) ? lanes.get(DEFAULT_LANE) : new Lane(DEFAULT_LANE);
+      lane.configure(0, maxCtx, 0);
+      newLanes.put(DEFAULT_LANE, lane);
+    }
+    if (reservedTotal > maxCtx)
+      err("The lanes in the " + propFilePassed + ".properties file reserve " + reservedTotal
+          + " Contexts, but maxCtx is only " + maxCtx + ".");
+    // With several lanes there is no safe guess for getWrappedContext().
+    if (rb.containsKey("lanes") && !rb.containsKey("defaultLane"))
+      err("The " + propFilePassed + ".properties file must contain defaultLane when lanes is set.");
+    String newDefaultLane = (rb.containsKey("defaultLane")) ? rb.getString("defaultLane").trim()
+        : newLanes.keySet().iterator().next();
+    if (!newLanes.containsKey(newDefaultLane))
+      err("The defaultLane " + newDefaultLane + " is not one of the lanes in the " + propFilePassed + ".properties file.");
+    for (Lane lane : lanes.values())
+    {
+      if (!newLanes.containsKey(lane.name) && !lane.waiters.isEmpty())
+        err("The lane " + lane.name + " has threads waiting for a Context and can not be removed from the "
+            + propFilePassed + ".properties file.");
     }
+    lanes = newLanes;
+    defaultLane = newDefaultLane;
   }
   
   /**
@@ -259,9 +580,54 @@ public class ExContextFactory
         ewc.disconnect();
       }
       activeContexts.clear();
+      for (Lane lane : lanes.values())
+      {
+        lane.inUse = 0;
+      }
     }
   }
   
+  /**
+   * Returns a value from the .properties file the pool was created from.
+   *
+   * @param key
+   *          the property name.
+   * @param defaultValue
+   *          returned if the property is not set.
+   * @return the trimmed property value, or defaultValue.
+   */
+  protected String getProperty(String key, String defaultValue)
+  {
+    return (rb.containsKey(key)) ? rb.getString(key).trim() : defaultValue;
+  }
+
+  /**
+   * Returns a numeric value from the .properties file the pool was created
+   * from.
+   *
+   * @param key
+   *          the property name.
+   * @param defaultValue
+   *          returned if the property is not set.
+   * @return the property value, or defaultValue.
+   * @throws Exception
+   *           if the property is set but is not a number.
+   */
+  protected int getIntProperty(String key, int defaultValue) throws Exception
+  {
+    String value = getProperty(key, null);
+    if (value == null)
+      return defaultValue;
+    try
+    {
+      return Integer.parseInt(value);
+    } catch(NumberFormatException nfe)
+    {
+      err("The " + propFilePassed + ".properties file must contain a number as a value assigned to " + key + ".");
+    }
+    return defaultValue;
+  }
+
   /**
    * Returns a UsrHead object with values populated from the .properties file.
    * 
@@ -302,4 +668,30 @@ public class ExContextFactory
   {
     destroyAllContexts();
   }
+  
+  /**
+   * A named partition of the pool. Guarded by the ExContextFactory monitor.
+   */
+  private static class Lane
+  {
+    private final String name;
+    private int reserved = 0;
+    private int max = 0;
+    private int timeout = 0;
+    private int inUse = 0;
+    private final LinkedList<Thread> waiters = new LinkedList<Thread>();
+    
+    private Lane(String name)
+    {
+      this.name = name;
+    }
+    
+    private void configure(int reserved, int max, int timeout)
+    {
+      this.reserved = reserved;
+      this.max = max;
+      this.timeout = timeout;
+      info("lane " + name + ": reserved " + reserved + ", max " + max + ", timeout " + timeout);
+    }
+  }
 }
@@ -20,6 +20,7 @@ public class ExContextWrapper extends Context
 {
   private boolean isCheckedOut_ = false;
   private int mnemonic_ = 0;
+  private String lane_ = null;
   
   ExContextWrapper(UsrHead usrHead, String host, int port, int timeout, int mnemonic, Properties props)
   {
@@ -42,11 +43,15 @@ public class ExContextWrapper extends Context
   }
   
   /**
-   * Sets the checked-out flag to true. 
+   * Sets the checked-out flag to true and records the lane it was taken for.
+   * 
+   * @param lane
+   *          name of the ExContextFactory lane the context is charged to.
    */
-  protected void checkOut()
+  protected void checkOut(String lane)
   {
     isCheckedOut_ = true;
+    lane_ = lane;
   }
   
   /**
@@ -55,6 +60,17 @@ public class ExContextWrapper extends Context
   protected void checkIn()
   {
     isCheckedOut_ = false;
+    lane_ = null;
+  }
+  
+  /**
+   * Returns the name of the lane this context is checked-out for.
+   * 
+   * @return the lane name, or null if the context is not checked-out.
+   */
+  protected String getLane()
+  {
+    return lane_;
   }
   
   /**
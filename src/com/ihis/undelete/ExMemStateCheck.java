@@ -0,0 +1,389 @@
+package com.ihis.undelete;
+
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import madison.mpi.GetType;
+import madison.mpi.IxnMemGet;
+import madison.mpi.KeyType;
+import madison.mpi.MemHead;
+import madison.mpi.MemRowList;
+import madison.mpi.Row;
+import madison.mpi.RowIterator;
+
+/**
+ * Pre-flight check for the undelete run. Looks up the current MemHead recStat
+ * of the input members with IxnMemGet, in batches spread over the Context
+ * pool, so that only logically deleted members are sent to IxnMemUndelete.<BR>
+ * Results are kept per SrcCode/MemIdnum, in input order, for the life of this
+ * object: a member that appears again in the input, or in a later call to
+ * filterDeleted, is not looked up again. A reconciliation report of every
+ * checked member can be written with writeReport(String).
+ */
+public class ExMemStateCheck
+{
+  /** recStat value of a logically deleted member. */
+  public static final String RECSTAT_DELETED = "D";
+  /** recStat value of an active member. */
+  public static final String RECSTAT_ACTIVE = "A";
+  /** Pseudo recStat for members the engine does not know about. */
+  public static final String RECSTAT_NOT_FOUND = "NOTFOUND";
+  /** Pseudo recStat for members whose lookup failed. */
+  public static final String RECSTAT_UNKNOWN = "UNKNOWN";
+
+  private ExContextFactory ecf = null;
+  private String lane = null;
+  private int batchSize = 100;
+  private int threads = 1;
+  // SrcCode|MemIdnum to recStat; the value is null until the lookup is done.
+  private Map<String, String> recStats = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+  /**
+   * @param ecf
+   *          the factory whose Context pool is used for the lookups.
+   * @param lane
+   *          the ExContextFactory lane the lookups are charged to, null for
+   *          the default lane.
+   * @param batchSize
+   *          number of members looked up per IxnMemGet call.
+   * @param threads
+   *          upper bound on the number of Contexts used at the same time. It
+   *          is further limited by the number of Contexts free to the lane.
+   */
+  public ExMemStateCheck(ExContextFactory ecf, String lane, int batchSize, int threads)
+  {
+    this.ecf = ecf;
+    this.lane = lane;
+    this.batchSize = (batchSize < 1) ? 1 : batchSize;
+    this.threads = (threads < 1) ? 1 : threads;
+  }
+
+  /**
+   * Looks up the recStat of all members not checked before and returns
+   * the members that are logically deleted, in input order. Members whose
+   * lookup failed are returned as well, so that the undelete stage reports
+   * the actual error for them, and so are members for which no Context could
+   * be obtained.
+   *
+   * @param members
+   *          members identified by SrcCode and MemIdnum.
+   * @return the members that should be sent to IxnMemUndelete.
+   * @throws Exception
+   *           if a lookup failed unexpectedly.
+   */
+  public List<MemHead> filterDeleted(List<MemHead> members) throws Exception
+  {
+    List<MemHead> toLookup = new ArrayList<MemHead>();
+    for(MemHead memHead : members)
+    {
+      String key = makeKey(memHead);
+      if(!recStats.containsKey(key))
+      {
+        recStats.put(key, null);
+        toLookup.add(memHead);
+      }
+    }
+    lookup(toLookup);
+
+    List<MemHead> deleted = new ArrayList<MemHead>();
+    for(MemHead memHead : members)
+    {
+      String recStat = getRecStat(memHead);
+      if(RECSTAT_DELETED.equals(recStat) || RECSTAT_UNKNOWN.equals(recStat))
+        deleted.add(memHead);
+    }
+    info("Pre-flight check: " + recStats.size() + " members checked, " + deleted.size() +
+        " will be sent to undelete.");
+    return deleted;
+  }
+
+  /**
+   * Returns the recStat found for the member, or null if it has not been
+   * checked yet.
+   *
+   * @param memHead
+   *          member identified by SrcCode and MemIdnum.
+   * @return recStat, RECSTAT_NOT_FOUND, RECSTAT_UNKNOWN or null.
+   */
+  public String getRecStat(MemHead memHead)
+  {
+    String key = makeKey(memHead);
+    synchronized(recStats)
+    {
+      String recStat = recStats.get(key);
+      // A member whose lookup never completed is unknown.
+      return (recStat == null && recStats.containsKey(key)) ? RECSTAT_UNKNOWN : recStat;
+    }
+  }
+
+  /**
+   * Writes one line per checked member in the form
+   * SrcCode|MemIdnum|recStat|action|reason, where action is either UNDELETE
+   * or SKIP.
+   *
+   * @param reportFilePath
+   *          the file to be (over)written.
+   * @throws IOException
+   *           if the report could not be written.
+   */
+  public void writeReport(String reportFilePath) throws IOException
+  {
+    int skipped = 0;
+    BufferedWriter w = new BufferedWriter(new FileWriter(reportFilePath));
+    try
+    {
+      w.write("srcCode|memIdnum|recStat|action|reason");
+      w.newLine();
+      Map<String, String> checked = null;
+      synchronized(recStats)
+      {
+        checked = new LinkedHashMap<String, String>(recStats);
+      }
+      for(Map.Entry<String, String> entry : checked.entrySet())
+      {
+        String recStat = (entry.getValue() == null) ? RECSTAT_UNKNOWN : entry.getValue();
+        String action = "SKIP";
+        String reason = null;
+        if(RECSTAT_DELETED.equals(recStat))
+        {
+          action = "UNDELETE";
+          reason = "member is logically deleted";
+        } else if(RECSTAT_UNKNOWN.equals(recStat))
+        {
+          action = "UNDELETE";
+          reason = "state lookup failed, left to the undelete stage";
+        } else if(RECSTAT_NOT_FOUND.equals(recStat))
+          reason = "member does not exist";
+        else if(RECSTAT_ACTIVE.equals(recStat))
+          reason = "member is already active";
+        else
+          reason = "member is not logically deleted";
+        if("SKIP".equals(action))
+          skipped++;
+        w.write(entry.getKey() + "|" + recStat + "|" + action + "|" + reason);
+        w.newLine();
+      }
+    } finally
+    {
+      w.close();
+    }
+    info("Reconciliation report written to " + reportFilePath + ", " + skipped + " members skipped.");
+  }
+
+  /**
+   * Splits the members into batches and looks them up concurrently, one
+   * Context per running batch.
+   */
+  private void lookup(List<MemHead> members) throws Exception
+  {
+    if(members.isEmpty())
+      return;
+    List<List<MemHead>> batches = new ArrayList<List<MemHead>>();
+    for(int i = 0; i < members.size(); i += batchSize)
+      batches.add(members.subList(i, Math.min(i + batchSize, members.size())));
+
+    int free = ecf.getFreeContextCount(lane);
+    if(free < 1)
+    {
+      // The check is optional; without a spare Context the members simply
+      // go to undelete unfiltered.
+      info("Pre-flight check: no Context is free for the lookups, all " + members.size() +
+          " members will be sent to undelete.");
+      markUnknown(members);
+      return;
+    }
+    int poolThreads = Math.min(threads, Math.min(batches.size(), free));
+    info("Pre-flight check: looking up " + members.size() + " members in " + batches.size() +
+        " batches using " + poolThreads + " Contexts.");
+    ExecutorService executor = Executors.newFixedThreadPool(poolThreads);
+    Throwable failure = null;
+    try
+    {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for(final List<MemHead> batch : batches)
+      {
+        results.add(executor.submit(new Callable<Void>()
+        {
+          public Void call() throws Exception
+          {
+            lookupBatch(batch);
+            return null;
+          }
+        }));
+      }
+      for(Future<Void> result : results)
+      {
+        try
+        {
+          result.get();
+        } catch (ExecutionException ee)
+        {
+          // Drop the batches that have not started. Running batches are not
+          // interrupted, so they finish their IxnMemGet and free their Context.
+          for(Future<Void> outstanding : results)
+            outstanding.cancel(false);
+          failure = ee.getCause();
+          break;
+        }
+      }
+    } finally
+    {
+      executor.shutdown();
+      // Every Context must be back in the pool before the caller can decide
+      // to tear the pool down.
+      while(!executor.awaitTermination(10, TimeUnit.SECONDS))
+        info("Pre-flight check: waiting for running batches to return their Contexts.");
+    }
+    if(failure != null)
+      err("Pre-flight check failed: " + failure.toString());
+  }
+
+  /**
+   * Looks up a single batch on a Context taken from the pool. If the batch
+   * call fails the members are looked up one at a time so that a single bad
+   * member does not mark the whole batch as unknown.
+   */
+  private void lookupBatch(List<MemHead> batch) throws Exception
+  {
+    ExContextWrapper ecw = null;
+    try
+    {
+      ecw = ecf.getWrappedContext(lane);
+    } catch (Exception e)
+    {
+      info("Pre-flight check: no Context available for a batch, " + batch.size() +
+          " members will be sent to undelete.");
+      markUnknown(batch);
+      return;
+    }
+    try
+    {
+      IxnMemGet memGet = new IxnMemGet(ecw);
+      // Only the MemHead segment is needed, for members in any state.
+      memGet.setSegCodeFilter("MEMHEAD");
+      memGet.setRecStatFilter("ADI");
+      if(!executeGet(memGet, batch))
+      {
+        info("Pre-flight batch lookup failed (" + memGet.getErrCode() + ": " + memGet.getErrText() +
+            "), retrying " + batch.size() + " members one at a time.");
+        for(MemHead memHead : batch)
+        {
+          List<MemHead> single = new ArrayList<MemHead>();
+          single.add(memHead);
+          if(!executeGet(memGet, single))
+            recStats.put(makeKey(memHead), RECSTAT_UNKNOWN);
+        }
+      }
+    } finally
+    {
+      ecf.freeContext(ecw);
+    }
+  }
+
+  /**
+   * Executes the IxnMemGet for the members and caches the recStat of every
+   * member returned. Members the engine did not return are recorded as not
+   * found, unless some returned MemHead could not be matched to an input
+   * member; the unmatched inputs are then recorded as unknown so that they are
+   * still sent to undelete.
+   *
+   * @return the status of the interaction.
+   */
+  private boolean executeGet(IxnMemGet memGet, List<MemHead> members)
+  {
+    MemRowList inpMemRows = new MemRowList();
+    for(MemHead memHead : members)
+    {
+      MemHead inpMemHead = new MemHead();
+      inpMemHead.setSrcCode(trim(memHead.getSrcCode()));
+      inpMemHead.setMemIdnum(trim(memHead.getMemIdnum()));
+      inpMemRows.addRow(inpMemHead);
+    }
+    MemRowList outMemRows = new MemRowList();
+    if(!memGet.execute(inpMemRows, outMemRows, GetType.ASMEMBER, KeyType.MEMIDNUM))
+      return false;
+
+    Map<String, String> returned = new HashMap<String, String>();
+    for(RowIterator iter = outMemRows.rows(); iter.hasMoreRows();)
+    {
+      Row row = (Row) iter.nextRow();
+      if(row instanceof MemHead)
+      {
+        MemHead outMemHead = (MemHead) row;
+        returned.put(makeKey(outMemHead), outMemHead.getRecStat());
+      }
+    }
+    int matched = 0;
+    for(MemHead memHead : members)
+    {
+      if(returned.containsKey(makeKey(memHead)))
+        matched++;
+    }
+    // A returned row that matches no input means the keys can not be
+    // trusted, so a member missing from the output may still exist.
+    String missing = (matched < returned.size()) ? RECSTAT_UNKNOWN : RECSTAT_NOT_FOUND;
+    for(MemHead memHead : members)
+    {
+      String key = makeKey(memHead);
+      String recStat = returned.get(key);
+      recStats.put(key, (recStat != null) ? recStat : missing);
+    }
+    return true;
+  }
+
+  private void markUnknown(List<MemHead> members)
+  {
+    for(MemHead memHead : members)
+      recStats.put(makeKey(memHead), RECSTAT_UNKNOWN);
+  }
+
+  private static String makeKey(MemHead memHead)
+  {
+    return trim(memHead.getSrcCode()) + "|" + trim(memHead.getMemIdnum());
+  }
+
+  private static String trim(String value)
+  {
+    return (value == null) ? null : value.trim();
+  }
+
+  /**
+   * Prints the message to the System.err and throws an Exception populated with
+   * the message.
+   *
+   * @param msg
+   *          The error message to be printed and turned into Exception.
+   * @throws Exception
+   *           created around the message.
+   */
+  private static void err(String msg) throws Exception
+  {
+    System.err.println(msg);
+    throw new Exception(msg);
+  }
+
+  /**
+   * Prints a message to the System.out
+   *
+   * @param msg
+   *          the message to be printed.
+   */
+  private static void info(String msg)
+  {
+    System.out.println(msg);
+  }
+}
@@ -5,6 +5,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /*  Copyright (c) 2008 by Initiate Systems, Inc. (INITIATE)             */
 /*                         All Rights Reserved.                         */
@@ -40,8 +42,8 @@ public class ExMemUndelete extends BaseExample
     // Create a member undelete interaction object.
     IxnMemUndelete memUndelete = new IxnMemUndelete(getContext());
 
-    // Create a member rowlist to hold input member row(s).
-    
+    // Members to be undeleted, in input file order.
+    List<MemHead> members = new ArrayList<MemHead>();
     
     try {
     	File f = new File("/home/mdm/UnDeleteAPI/input/undelteInput.txt");
@@ -50,19 +52,32 @@ public class ExMemUndelete extends BaseExample
     	System.out.println("Reading file");
     	while ((readLine = b.readLine()) != null) 
 		{
-    		MemRowList inpMemRows = new MemRowList();
     		String record[]  = readLine.split("\\|");
     	    // MemHead models the Initiate database table mpi_memhead.
     	    MemHead memHead = new MemHead();
 
     	    // Set the identifiers of the member to be undeleted.
-    	    memHead.setSrcCode(record[0]);
-    	    memHead.setMemIdnum(record[1]);
+    	    memHead.setSrcCode(record[0].trim());
+    	    memHead.setMemIdnum(record[1].trim());
     	    // We could use MemRecno in place of SrcCode/MemIdnum:
     	    // memHead.setMemRecno(162L);
+    	    members.add(memHead);
+    	}
+    	b.close();
+
+    	// Optionally drop members that are already active or do not exist,
+    	// so that they do not cost an IxnMemUndelete round trip each.
+    	members = preflight(members);
+
+    	for (MemHead memHead : members)
+    	{
+    		MemRowList inpMemRows = new MemRowList();
     	    inpMemRows.addRow(memHead);
 
 //    	    waitForQueues(memHead.getSrcCode(), memHead.getMemIdnum());
+	   	    // Execute the member undelete interaction.
+		    // If MemRecno was used as member identifier we must use KeyType.MEMRECNO:
+		    // boolean status = memUndelete.execute(inpMemRows, KeyType.MEMRECNO);
 		    boolean status = memUndelete.execute(inpMemRows, KeyType.MEMIDNUM);
 		    if (status)
 	        info("The " + intrName + " interaction worked.  Member has been undeleted.");
@@ -72,12 +87,7 @@ public class ExMemUndelete extends BaseExample
 	        disconnect();
 	        ixnError("The " + intrName + " interaction failed.", memUndelete.getErrCode().toString(), memUndelete.getErrText());
 	      }
-
     	}
-	   	    // Execute the member undelete interaction.
-		    // If MemRecno was used as member identifier we must use KeyType.MEMRECNO:
-		    // boolean status = memUndelete.execute(inpMemRows, KeyType.MEMRECNO);
-    	b.close();
     } catch (IOException e) {
 		disconnect();
     	e.printStackTrace();
@@ -85,4 +95,58 @@ public class ExMemUndelete extends BaseExample
     // Disconnect from Master Data Engine server
     disconnect();
   }
-}
\ No newline at end of file
+
+  /**
+   * Runs the pre-flight state check if preflight=true is set in the
+   * .properties file and returns the members that still need to be undeleted.
+   * A failed check or a report that can not be written is logged and does
+   * not stop the run.
+   * 
+   * @param members
+   *          the members read from the input file.
+   * @return the members to be sent to IxnMemUndelete.
+   * @throws Exception
+   *           if the pre-flight properties are invalid; the Context pool is
+   *           released first.
+   */
+  private static List<MemHead> preflight(List<MemHead> members) throws Exception
+  {
+    try
+    {
+      ExContextFactory ecf = getContextFactory();
+      if (!Boolean.parseBoolean(ecf.getProperty("preflight", "false")))
+        return members;
+      ExMemStateCheck stateCheck = new ExMemStateCheck(ecf, ecf.getProperty("preflight.lane", null),
+          ecf.getIntProperty("preflight.batchSize", 100), ecf.getIntProperty("preflight.threads", 4));
+      List<MemHead> deleted = null;
+      try
+      {
+        deleted = stateCheck.filterDeleted(members);
+      } catch (Exception e)
+      {
+        // The check is only an optimization, so it must not stop the run.
+        System.err.println("The pre-flight check failed, all " + members.size()
+            + " members will be sent to undelete: " + e.toString());
+        return members;
+      }
+      String reportFilePath = ecf.getProperty("preflight.reportfilepath", null);
+      if (reportFilePath != null)
+      {
+        try
+        {
+          stateCheck.writeReport(reportFilePath);
+        } catch (IOException ioe)
+        {
+          System.err.println("The reconciliation report could not be written to " + reportFilePath + ": "
+              + ioe.toString());
+        }
+      }
+      return deleted;
+    } catch (Exception e)
+    {
+      // Disconnect from Master Data Engine server
+      disconnect();
+      throw e;
+    }
+  }
+}